@@ -16,8 +16,11 @@
 import com.microsoft.azure.storage.*;
 import com.microsoft.azure.storage.queue.*;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.security.InvalidKeyException;
 import java.util.*;
 
@@ -57,6 +60,18 @@ class QueueAdvanced {
             queueAcl(queueClient);
             System.out.println();
 
+            System.out.println("Ordered consumer sample");
+            orderedConsumer(queueClient);
+            System.out.println();
+
+            System.out.println("Queue export and import sample");
+            exportImport(queueClient);
+            System.out.println();
+
+            System.out.println("Client pool sample");
+            clientPool();
+            System.out.println();
+
             // This will fail unless the account is RA-GRS enabled.
 //            System.out.println("Service stats sample");
 //            serviceStats(queueClient);
@@ -249,6 +264,138 @@ class QueueAdvanced {
         }
     }
 
+    /**
+     * Process messages in order per customer while running different customers in parallel.
+     * @param queueClient Azure Storage Queue Service
+     */
+    private void orderedConsumer(CloudQueueClient queueClient) throws StorageException, URISyntaxException, InterruptedException {
+        // Get a reference to a queue
+        CloudQueue queue = queueClient.getQueueReference("queue"
+                + UUID.randomUUID().toString().replace("-", ""));
+
+        try {
+            System.out.println("Create queue");
+            queue.createIfNotExists();
+
+            System.out.println("Enqueue messages for 4 customers");
+            for (int i = 0; i < 40; i++) {
+                queue.addMessage(new CloudQueueMessage(String.format("customer-%d:%d", i % 4, i / 4)));
+            }
+
+            // The partition key is the customer id in front of the colon. Messages without a colon are keyed
+            // by their whole content, and a message that cannot be decoded stops the consumer with the error.
+            QueueOrderedConsumer consumer = new QueueOrderedConsumer(
+                    queue,
+                    message -> {
+                        String content;
+                        try {
+                            content = message.getMessageContentAsString();
+                        }
+                        catch (StorageException e) {
+                            throw new IllegalStateException(String.format("Failed to decode message \"%s\".", message.getMessageId()), e);
+                        }
+                        int separator = content.indexOf(':');
+                        return separator < 0 ? content : content.substring(0, separator);
+                    },
+                    message -> System.out.printf(" %s processed %s%n", Thread.currentThread().getName(), message.getMessageContentAsString()),
+                    4,
+                    8,
+                    60);
+
+            System.out.println("Process messages");
+            consumer.processAll();
+
+            System.out.println("Lane metrics:");
+            consumer.printLaneMetrics();
+        }
+        finally {
+            // Delete the queue
+            System.out.println("Delete queue");
+            queue.deleteIfExists();
+        }
+    }
+
+    /**
+     * Drain a queue into a local snapshot and replay it into another queue.
+     * @param queueClient Azure Storage Queue Service
+     */
+    private void exportImport(CloudQueueClient queueClient) throws StorageException, URISyntaxException, IOException, InterruptedException {
+        // Get references to the source and target queues
+        CloudQueue source = queueClient.getQueueReference("queue"
+                + UUID.randomUUID().toString().replace("-", ""));
+        CloudQueue target = queueClient.getQueueReference("queue"
+                + UUID.randomUUID().toString().replace("-", ""));
+        Path directory = Files.createTempDirectory("queuesnapshot");
+
+        try {
+            System.out.println("Create queues");
+            source.createIfNotExists();
+            target.createIfNotExists();
+
+            System.out.println("Enqueue messages into the source queue");
+            for (int i = 0; i < 100; i++) {
+                source.addMessage(new CloudQueueMessage(Integer.toString(i) + " - Hello World"));
+            }
+
+            System.out.printf("Export source queue to %s%n", directory);
+            QueueExporter exporter = new QueueExporter(source, directory, QueueSnapshot.Format.NDJSON, 4, 25, 60);
+            System.out.printf(" %d messages exported%n", exporter.drain());
+
+            System.out.println("Import snapshot into the target queue");
+            QueueImporter importer = new QueueImporter(target, directory, 4, 50);
+            System.out.printf(" %d messages imported%n", importer.importAll());
+
+            target.downloadAttributes();
+            System.out.printf("Approximate number of messages in the target queue: %d%n", target.getApproximateMessageCount());
+        }
+        finally {
+            // Delete the queues and the snapshot
+            System.out.println("Delete queues");
+            source.deleteIfExists();
+            target.deleteIfExists();
+
+            File[] files = directory.toFile().listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+            Files.deleteIfExists(directory);
+        }
+    }
+
+    /**
+     * Spread queues across every storage account configured in config.properties.
+     */
+    private void clientPool() throws StorageException, URISyntaxException, IOException, InvalidKeyException {
+        QueueClientPool pool = new QueueClientPool(QueueClientProvider.getQueueClientReferences(), 500, 30);
+        List<String> queueNames = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            queueNames.add("queue" + UUID.randomUUID().toString().replace("-", ""));
+        }
+
+        try {
+            System.out.println("Create queues and enqueue a message into each");
+            for (String queueName : queueNames) {
+                pool.createQueue(queueName);
+                pool.execute(queueName, queue -> {
+                    queue.addMessage(new CloudQueueMessage("Hello World"));
+                    return null;
+                });
+            }
+
+            System.out.println("Endpoint metrics:");
+            pool.printEndpointMetrics();
+        }
+        finally {
+            // Delete the queues
+            System.out.println("Delete queues");
+            for (String queueName : queueNames) {
+                pool.getQueueReference(queueName).deleteIfExists();
+            }
+        }
+    }
+
     /**
      * Retrieve statistics related to replication for the Queue service.
      * This operation is only available on the secondary location endpoint
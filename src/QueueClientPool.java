@@ -0,0 +1,340 @@
+/*
+  Copyright Microsoft Corporation
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+import com.microsoft.azure.storage.RetryNoRetry;
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.queue.CloudQueue;
+import com.microsoft.azure.storage.queue.CloudQueueClient;
+import com.microsoft.azure.storage.queue.QueueRequestOptions;
+
+import java.net.HttpURLConnection;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Spreads queues across several storage accounts.
+ *
+ * Queue names are placed on a consistent hash ring of the configured endpoints. Ring positions are derived from
+ * the account endpoint only, so the ring owner of a name does not depend on the order the accounts are configured
+ * in. Every operation run through the pool is timed; an endpoint that is throttled, failing or slower than the
+ * configured threshold is cooling down for a while.
+ *
+ * A queue is looked up on its ring owner first and then on the following endpoints in ring order, and the first
+ * endpoint that holds it is cached. This finds queues that {@link #createQueue} diverted away from a cooling
+ * owner, in this or any other process, and queues that stayed on their previous owner after an account was added
+ * (that previous owner is the next endpoint after the new one on the ring). Queues on a removed account are no
+ * longer reachable. Lookup probes are bounded by a short timeout and are not retried; a name that exists on no
+ * endpoint is not cached, so it is probed again on every lookup until it is created.
+ *
+ * New queues are created on the ring owner, or on the next healthy endpoint on the ring while the owner is
+ * cooling down.
+ */
+class QueueClientPool {
+
+    /**
+     * An operation against a queue placed by the pool.
+     */
+    interface QueueOperation<T> {
+        T apply(CloudQueue queue) throws StorageException;
+    }
+
+    private static final int VIRTUAL_NODES_PER_ENDPOINT = 128;
+    private static final double LATENCY_SMOOTHING = 0.2;
+    private static final int PROBE_TIMEOUT_MILLIS = 2000;
+    private static final String QUEUE_NOT_FOUND = "QueueNotFound";
+
+    private final List<Endpoint> endpoints = new ArrayList<>();
+    private final TreeMap<Long, Endpoint> ring = new TreeMap<>();
+    private final Map<String, Endpoint> locations = new ConcurrentHashMap<>();
+    private final QueueRequestOptions probeOptions = new QueueRequestOptions();
+    private final long slowThresholdNanos;
+    private final long coolDownNanos;
+
+    /**
+     * Creates a pool over the given queue clients.
+     *
+     * @param queueClients One queue client per storage account
+     * @param slowThresholdMillis Smoothed latency above which an endpoint is considered slow
+     * @param coolDownSeconds How long a slow, throttled or failing endpoint receives no new queues
+     */
+    QueueClientPool(List<CloudQueueClient> queueClients, long slowThresholdMillis, long coolDownSeconds) {
+        if (queueClients.isEmpty()) {
+            throw new IllegalArgumentException("At least one queue client is required.");
+        }
+
+        this.slowThresholdNanos = TimeUnit.MILLISECONDS.toNanos(slowThresholdMillis);
+        this.coolDownNanos = TimeUnit.SECONDS.toNanos(coolDownSeconds);
+
+        // Probes must not stall on an endpoint that is down
+        probeOptions.setRetryPolicyFactory(new RetryNoRetry());
+        probeOptions.setTimeoutIntervalInMs(PROBE_TIMEOUT_MILLIS);
+        probeOptions.setMaximumExecutionTimeInMs(PROBE_TIMEOUT_MILLIS);
+
+        for (CloudQueueClient queueClient : queueClients) {
+            Endpoint endpoint = new Endpoint(queueClient);
+            for (Endpoint existing : endpoints) {
+                if (existing.name.equals(endpoint.name)) {
+                    throw new IllegalArgumentException(String.format("Endpoint \"%s\" is configured more than once.", endpoint.name));
+                }
+            }
+            endpoints.add(endpoint);
+            for (int node = 0; node < VIRTUAL_NODES_PER_ENDPOINT; node++) {
+                ring.put(hash(String.format("%s#%d", endpoint.name, node)), endpoint);
+            }
+        }
+    }
+
+    /**
+     * Creates a queue unless it already exists on one of the endpoints. A new queue is placed on the ring owner,
+     * or on the next healthy endpoint on the ring when the owner is cooling down.
+     *
+     * @param queueName Name of the queue
+     * @return The CloudQueue object
+     * @throws URISyntaxException
+     * @throws StorageException
+     */
+    CloudQueue createQueue(String queueName) throws URISyntaxException, StorageException {
+        Endpoint endpoint = locate(queueName);
+        if (endpoint == null) {
+            endpoint = place(queueName);
+        }
+
+        CloudQueue queue = endpoint.queueClient.getQueueReference(queueName);
+        if (timed(endpoint, queue, q -> q.createIfNotExists())) {
+            endpoint.created.incrementAndGet();
+        }
+        locations.put(queueName, endpoint);
+        return queue;
+    }
+
+    /**
+     * Returns a reference to a queue on the endpoint that holds it, or on its ring owner if no endpoint does.
+     *
+     * @param queueName Name of the queue
+     * @return The CloudQueue object
+     * @throws URISyntaxException
+     * @throws StorageException
+     */
+    CloudQueue getQueueReference(String queueName) throws URISyntaxException, StorageException {
+        return endpointFor(queueName).queueClient.getQueueReference(queueName);
+    }
+
+    /**
+     * Runs an operation against a queue and records its latency and outcome for the queue's endpoint.
+     * If the cached endpoint no longer holds the queue, the queue is looked up again and the operation is
+     * retried once on the endpoint that does.
+     *
+     * @param queueName Name of the queue
+     * @param operation The operation to run
+     * @return The result of the operation
+     * @throws URISyntaxException
+     * @throws StorageException
+     */
+    <T> T execute(String queueName, QueueOperation<T> operation) throws URISyntaxException, StorageException {
+        Endpoint endpoint = endpointFor(queueName);
+        try {
+            return timed(endpoint, endpoint.queueClient.getQueueReference(queueName), operation);
+        }
+        catch (StorageException e) {
+            if (!QUEUE_NOT_FOUND.equals(e.getErrorCode()) || !locations.remove(queueName, endpoint)) {
+                throw e;
+            }
+
+            Endpoint relocated = locate(queueName);
+            if (relocated == null || relocated == endpoint) {
+                throw e;
+            }
+            return timed(relocated, relocated.queueClient.getQueueReference(queueName), operation);
+        }
+    }
+
+    private <T> T timed(Endpoint endpoint, CloudQueue queue, QueueOperation<T> operation) throws StorageException {
+        long start = System.nanoTime();
+        try {
+            T result = operation.apply(queue);
+            endpoint.recordSuccess(System.nanoTime() - start);
+            return result;
+        }
+        catch (StorageException e) {
+            endpoint.recordFailure(e);
+            throw e;
+        }
+    }
+
+    /**
+     * Prints the health and latency of every endpoint.
+     */
+    void printEndpointMetrics() {
+        long now = System.nanoTime();
+        for (Endpoint endpoint : endpoints) {
+            System.out.println(String.format(
+                    "\tEndpoint %s: %s, created %d, latency %.1f ms, succeeded %d, failed %d, throttled %d",
+                    endpoint.name,
+                    endpoint.isHealthy(now) ? "healthy" : "cooling down",
+                    endpoint.created.get(),
+                    endpoint.latencyNanos / 1000000.0,
+                    endpoint.succeeded.get(),
+                    endpoint.failed.get(),
+                    endpoint.throttled.get()));
+        }
+    }
+
+    /**
+     * Returns the endpoint that holds the queue, or the ring owner of the queue name if none does.
+     */
+    private Endpoint endpointFor(String queueName) throws URISyntaxException {
+        Endpoint endpoint = locate(queueName);
+        return endpoint != null ? endpoint : ringOrder(queueName).get(0);
+    }
+
+    /**
+     * Finds the endpoint that holds the queue, probing the ring owner first and then the following endpoints
+     * in ring order. A hit is cached.
+     *
+     * @return The endpoint holding the queue, or null if no endpoint could confirm it
+     */
+    private Endpoint locate(String queueName) throws URISyntaxException {
+        Endpoint cached = locations.get(queueName);
+        if (cached != null) {
+            return cached;
+        }
+
+        for (Endpoint endpoint : ringOrder(queueName)) {
+            try {
+                CloudQueue queue = endpoint.queueClient.getQueueReference(queueName);
+                if (timed(endpoint, queue, q -> q.exists(probeOptions, null))) {
+                    Endpoint existing = locations.putIfAbsent(queueName, endpoint);
+                    return existing != null ? existing : endpoint;
+                }
+            }
+            catch (StorageException e) {
+                // Unreachable endpoints are recorded by timed(); keep looking on the others
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Chooses the endpoint for a new queue: the ring owner when it is healthy, otherwise the first healthy
+     * endpoint clockwise from the queue's hash. Falls back to the owner when every endpoint is cooling down.
+     */
+    private Endpoint place(String queueName) {
+        long now = System.nanoTime();
+        List<Endpoint> candidates = ringOrder(queueName);
+        for (Endpoint endpoint : candidates) {
+            if (endpoint.isHealthy(now)) {
+                return endpoint;
+            }
+        }
+        return candidates.get(0);
+    }
+
+    /**
+     * Returns the distinct endpoints in ring order, starting with the ring owner of the queue name.
+     */
+    private List<Endpoint> ringOrder(String queueName) {
+        long hash = hash(queueName);
+        List<Endpoint> order = new ArrayList<>(endpoints.size());
+        for (SortedMap<Long, Endpoint> part : Arrays.asList(ring.tailMap(hash), ring.headMap(hash))) {
+            for (Endpoint endpoint : part.values()) {
+                if (!order.contains(endpoint)) {
+                    order.add(endpoint);
+                    if (order.size() == endpoints.size()) {
+                        return order;
+                    }
+                }
+            }
+        }
+        return order;
+    }
+
+    private static long hash(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes(StandardCharsets.UTF_8));
+            long hash = 0;
+            for (int i = 0; i < 8; i++) {
+                hash = (hash << 8) | (digest[i] & 0xff);
+            }
+            return hash;
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Health and latency of a single storage account endpoint.
+     */
+    private final class Endpoint {
+
+        private final CloudQueueClient queueClient;
+        private final String name;
+        private final AtomicInteger created = new AtomicInteger();
+        private final AtomicLong succeeded = new AtomicLong();
+        private final AtomicLong failed = new AtomicLong();
+        private final AtomicLong throttled = new AtomicLong();
+        private volatile double latencyNanos;
+        private volatile long coolDownUntilNanos = System.nanoTime();
+
+        Endpoint(CloudQueueClient queueClient) {
+            this.queueClient = queueClient;
+            this.name = queueClient.getEndpoint().toString();
+        }
+
+        boolean isHealthy(long now) {
+            return now - coolDownUntilNanos >= 0;
+        }
+
+        synchronized void recordSuccess(long elapsedNanos) {
+            succeeded.incrementAndGet();
+            latencyNanos = latencyNanos == 0 ? elapsedNanos : latencyNanos + LATENCY_SMOOTHING * (elapsedNanos - latencyNanos);
+            if (latencyNanos > slowThresholdNanos) {
+                coolDown();
+            }
+        }
+
+        synchronized void recordFailure(StorageException e) {
+            failed.incrementAndGet();
+
+            // Client errors such as a missing queue say nothing about the health of the endpoint
+            int status = e.getHttpStatusCode();
+            if (status >= HttpURLConnection.HTTP_BAD_REQUEST && status < HttpURLConnection.HTTP_INTERNAL_ERROR) {
+                return;
+            }
+
+            // The service reports throttling as 503 (Server Busy) or 500 (Operation Timed Out)
+            if (status == HttpURLConnection.HTTP_UNAVAILABLE || status == HttpURLConnection.HTTP_INTERNAL_ERROR) {
+                throttled.incrementAndGet();
+            }
+            coolDown();
+        }
+
+        private void coolDown() {
+            coolDownUntilNanos = System.nanoTime() + coolDownNanos;
+        }
+    }
+}
@@ -5,13 +5,18 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.net.URISyntaxException;
 import java.security.InvalidKeyException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
+import java.util.TreeMap;
 
 /**
  * Manages the storage queue client
  */
 class QueueClientProvider {
 
+    private static final String CONNECTION_STRING_PROPERTY = "StorageConnectionString";
+
     /**
      * Validates the connection string and returns the storage queue client.
      * The connection string must be in the Azure connection string format.
@@ -21,7 +26,60 @@ class QueueClientProvider {
      */
     static CloudQueueClient getQueueClientReference() throws RuntimeException, IOException, URISyntaxException, InvalidKeyException {
 
-        // Retrieve the connection string
+        return createQueueClient(loadProperties().getProperty(CONNECTION_STRING_PROPERTY));
+    }
+
+    /**
+     * Validates every configured connection string and returns one storage queue client per storage account.
+     * Additional accounts are configured with numbered keys such as "StorageConnectionString.1"; the plain
+     * "StorageConnectionString" key, when present, is always the first client, followed by the numbered keys in
+     * numeric order. Each account must be configured only once.
+     *
+     * @return The newly created CloudQueueClient objects
+     *
+     */
+    static List<CloudQueueClient> getQueueClientReferences() throws RuntimeException, IOException, URISyntaxException, InvalidKeyException {
+
+        Properties prop = loadProperties();
+        List<CloudQueueClient> queueClients = new ArrayList<>();
+        if (prop.getProperty(CONNECTION_STRING_PROPERTY) != null) {
+            queueClients.add(createQueueClient(prop.getProperty(CONNECTION_STRING_PROPERTY)));
+        }
+
+        // Order the numbered keys by number so that ".10" follows ".9"
+        TreeMap<Integer, String> numberedKeys = new TreeMap<>();
+        for (String key : prop.stringPropertyNames()) {
+            if (key.startsWith(CONNECTION_STRING_PROPERTY + ".")) {
+                int number;
+                try {
+                    number = Integer.parseInt(key.substring(CONNECTION_STRING_PROPERTY.length() + 1));
+                }
+                catch (NumberFormatException e) {
+                    System.out.println(String.format("\nConnection string key \"%s\" is not numbered.", key));
+                    throw new IllegalArgumentException(String.format("Invalid connection string key \"%s\".", key), e);
+                }
+                String previous = numberedKeys.put(number, key);
+                if (previous != null) {
+                    System.out.println(String.format("\nConnection string keys \"%s\" and \"%s\" have the same number.", previous, key));
+                    throw new IllegalArgumentException(String.format("Duplicate connection string key \"%s\".", key));
+                }
+            }
+        }
+        for (String key : numberedKeys.values()) {
+            queueClients.add(createQueueClient(prop.getProperty(key)));
+        }
+
+        if (queueClients.isEmpty()) {
+            System.out.println("\nNo connection string found in config.properties file.");
+            throw new IllegalArgumentException("No connection string configured.");
+        }
+
+        return queueClients;
+    }
+
+    private static Properties loadProperties() throws RuntimeException, IOException {
+
+        // Retrieve the connection strings
         Properties prop = new Properties();
         try {
             InputStream propertyStream = QueueBasics.class.getClassLoader().getResourceAsStream("config.properties");
@@ -36,9 +94,14 @@ class QueueClientProvider {
             throw e;
         }
 
+        return prop;
+    }
+
+    private static CloudQueueClient createQueueClient(String connectionString) throws URISyntaxException, InvalidKeyException {
+
         CloudStorageAccount storageAccount;
         try {
-            storageAccount = CloudStorageAccount.parse(prop.getProperty("StorageConnectionString"));
+            storageAccount = CloudStorageAccount.parse(connectionString);
         }
         catch (IllegalArgumentException|URISyntaxException e) {
             System.out.println("\nConnection string specifies an invalid URI.");
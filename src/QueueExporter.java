@@ -0,0 +1,327 @@
+/*
+  Copyright Microsoft Corporation
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.queue.CloudQueue;
+import com.microsoft.azure.storage.queue.CloudQueueMessage;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Exports the messages of a queue to a local snapshot directory (see {@link QueueSnapshot}).
+ *
+ * When draining, several retrievers fetch batches in parallel and hand them to a single writer which streams
+ * them into chunk files. Messages are only deleted from the queue after the chunk holding them has been forced
+ * to disk and recorded in the checkpoint, so an interrupted export can be resumed by running it again against
+ * the same directory. The deletes of a chunk run in parallel on a bounded pool and complete before the next chunk
+ * is started. A crash between the checkpoint and the deletes can export those messages twice once they become
+ * visible again.
+ *
+ * Memory use is bounded and independent of the queue length: the pending chunk, up to {@code retrieverCount * 2}
+ * batches waiting for the writer and one batch being retrieved per retriever, that is at most
+ * {@code chunkSize + retrieverCount * 3 * 32} messages. Their visibility is renewed every half timeout until they
+ * are deleted, so a slow disk or a long writer backlog does not let them be retrieved a second time.
+ *
+ * A drain cannot continue a peek snapshot and a peek cannot overwrite an existing snapshot.
+ */
+class QueueExporter {
+
+    private static final int MAX_BATCH_SIZE = 32;
+    private static final String POP_RECEIPT_MISMATCH = "PopReceiptMismatch";
+    private static final String MESSAGE_NOT_FOUND = "MessageNotFound";
+
+    private final CloudQueue queue;
+    private final Path directory;
+    private final QueueSnapshot.Format format;
+    private final int retrieverCount;
+    private final int chunkSize;
+    private final int visibilityTimeoutInSeconds;
+
+    /**
+     * Creates an exporter.
+     *
+     * @param queue The queue to export
+     * @param directory Snapshot directory; created if it does not exist
+     * @param format Record format of new snapshots. A resumed snapshot keeps the format it was started with
+     * @param retrieverCount Number of parallel batch retrievers
+     * @param chunkSize Number of messages per chunk file
+     * @param visibilityTimeoutInSeconds Visibility timeout of retrieved messages; it is renewed every half timeout
+     *                                   while the message is held by the exporter
+     */
+    QueueExporter(CloudQueue queue, Path directory, QueueSnapshot.Format format, int retrieverCount, int chunkSize, int visibilityTimeoutInSeconds) {
+        if (retrieverCount < 1) {
+            throw new IllegalArgumentException("retrieverCount must be at least 1.");
+        }
+        if (chunkSize < 1) {
+            throw new IllegalArgumentException("chunkSize must be at least 1.");
+        }
+        if (visibilityTimeoutInSeconds < 2) {
+            throw new IllegalArgumentException("visibilityTimeoutInSeconds must be at least 2.");
+        }
+
+        this.queue = queue;
+        this.directory = directory;
+        this.format = format;
+        this.retrieverCount = retrieverCount;
+        this.chunkSize = chunkSize;
+        this.visibilityTimeoutInSeconds = visibilityTimeoutInSeconds;
+    }
+
+    /**
+     * Drains the queue into the snapshot, resuming after the last completed chunk.
+     *
+     * @return The total number of messages in the snapshot
+     * @throws IOException
+     * @throws StorageException
+     * @throws InterruptedException
+     */
+    long drain() throws IOException, StorageException, InterruptedException {
+        Files.createDirectories(directory);
+        Path checkpointFile = directory.resolve(QueueSnapshot.EXPORT_CHECKPOINT);
+        Properties checkpoint = QueueSnapshot.loadCheckpoint(checkpointFile);
+        if (QueueSnapshot.PEEK_MODE.equals(checkpoint.getProperty(QueueSnapshot.MODE_PROPERTY))) {
+            // The peeked messages are still in the queue and would be exported twice
+            throw new IllegalStateException(String.format("\"%s\" holds a peek snapshot and cannot be drained into.", directory));
+        }
+        QueueSnapshot.Format snapshotFormat = QueueSnapshot.Format.valueOf(checkpoint.getProperty(QueueSnapshot.FORMAT_PROPERTY, format.name()));
+        int chunkIndex = Integer.parseInt(checkpoint.getProperty(QueueSnapshot.CHUNKS_PROPERTY, "0"));
+        long total = Long.parseLong(checkpoint.getProperty(QueueSnapshot.MESSAGES_PROPERTY, "0"));
+
+        BlockingQueue<List<HeldMessage>> batches = new ArrayBlockingQueue<>(retrieverCount * 2);
+        Set<HeldMessage> held = ConcurrentHashMap.newKeySet();
+        AtomicInteger activeRetrievers = new AtomicInteger(retrieverCount);
+        AtomicLong lostReceipts = new AtomicLong();
+        ExecutorService executor = Executors.newFixedThreadPool(retrieverCount);
+        ExecutorService deleters = Executors.newFixedThreadPool(retrieverCount);
+        ScheduledExecutorService renewer = Executors.newSingleThreadScheduledExecutor();
+        List<Future<?>> retrievers = new ArrayList<>();
+
+        try {
+            long renewPeriodMillis = TimeUnit.SECONDS.toMillis(visibilityTimeoutInSeconds) / 4;
+            renewer.scheduleWithFixedDelay(() -> {
+                long now = System.nanoTime();
+                for (HeldMessage message : held) {
+                    try {
+                        message.renewIfDue(now);
+                    }
+                    catch (Throwable t) {
+                        PrintHelper.printException(t);
+                    }
+                }
+            }, renewPeriodMillis, renewPeriodMillis, TimeUnit.MILLISECONDS);
+
+            for (int i = 0; i < retrieverCount; i++) {
+                retrievers.add(executor.submit(() -> {
+                    try {
+                        while (true) {
+                            List<HeldMessage> batch = new ArrayList<>(MAX_BATCH_SIZE);
+                            for (CloudQueueMessage message : queue.retrieveMessages(MAX_BATCH_SIZE, visibilityTimeoutInSeconds, null, null)) {
+                                HeldMessage heldMessage = new HeldMessage(message, held);
+                                held.add(heldMessage);
+                                batch.add(heldMessage);
+                            }
+                            if (batch.isEmpty()) {
+                                return null;
+                            }
+                            batches.put(batch);
+                        }
+                    }
+                    finally {
+                        activeRetrievers.decrementAndGet();
+                    }
+                }));
+            }
+
+            List<HeldMessage> pending = new ArrayList<>(chunkSize);
+            QueueSnapshot.ChunkWriter writer = null;
+            try {
+                while (true) {
+                    List<HeldMessage> batch = batches.poll(100, TimeUnit.MILLISECONDS);
+                    if (batch == null) {
+                        if (activeRetrievers.get() == 0 && batches.isEmpty()) {
+                            break;
+                        }
+                        continue;
+                    }
+
+                    for (HeldMessage message : batch) {
+                        if (writer == null) {
+                            writer = new QueueSnapshot.ChunkWriter(QueueSnapshot.chunkPath(directory, snapshotFormat, chunkIndex), snapshotFormat);
+                        }
+                        writer.write(message.message);
+                        pending.add(message);
+
+                        if (pending.size() == chunkSize) {
+                            writer.close();
+                            writer = null;
+                            total += pending.size();
+                            commitChunk(deleters, checkpointFile, snapshotFormat, ++chunkIndex, total, pending, lostReceipts);
+                        }
+                    }
+                }
+
+                if (writer != null) {
+                    writer.close();
+                    writer = null;
+                    total += pending.size();
+                    commitChunk(deleters, checkpointFile, snapshotFormat, ++chunkIndex, total, pending, lostReceipts);
+                }
+            }
+            finally {
+                if (writer != null) {
+                    writer.close();
+                }
+            }
+
+            // Surface any failure from the retrievers
+            for (Future<?> retriever : retrievers) {
+                retriever.get();
+            }
+        }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof StorageException) {
+                throw (StorageException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+        finally {
+            executor.shutdownNow();
+            deleters.shutdownNow();
+            renewer.shutdownNow();
+        }
+
+        if (lostReceipts.get() > 0) {
+            System.out.println(String.format(
+                    "\t%d exported messages were retrieved again before they could be deleted and may appear twice in the snapshot.",
+                    lostReceipts.get()));
+        }
+        return total;
+    }
+
+    /**
+     * Writes the front of the queue (up to 32 messages) to a single chunk without removing anything from the queue.
+     * The directory must not already hold a snapshot.
+     *
+     * @return The number of messages exported
+     * @throws IOException
+     * @throws StorageException
+     */
+    long peek() throws IOException, StorageException {
+        // Never overwrite a drained snapshot; its chunks may hold the only copy of deleted messages
+        if (QueueSnapshot.exists(directory)) {
+            throw new IllegalStateException(String.format("\"%s\" already holds a snapshot.", directory));
+        }
+        Files.createDirectories(directory);
+
+        long total = 0;
+        try (QueueSnapshot.ChunkWriter writer = new QueueSnapshot.ChunkWriter(QueueSnapshot.chunkPath(directory, format, 0), format)) {
+            for (CloudQueueMessage message : queue.peekMessages(MAX_BATCH_SIZE)) {
+                writer.write(message);
+                total++;
+            }
+        }
+
+        Properties checkpoint = new Properties();
+        checkpoint.setProperty(QueueSnapshot.MODE_PROPERTY, QueueSnapshot.PEEK_MODE);
+        checkpoint.setProperty(QueueSnapshot.FORMAT_PROPERTY, format.name());
+        checkpoint.setProperty(QueueSnapshot.CHUNKS_PROPERTY, "1");
+        checkpoint.setProperty(QueueSnapshot.MESSAGES_PROPERTY, Long.toString(total));
+        QueueSnapshot.storeCheckpoint(directory.resolve(QueueSnapshot.EXPORT_CHECKPOINT), checkpoint);
+        return total;
+    }
+
+    /**
+     * Records a completed chunk in the checkpoint and then deletes its messages from the queue in parallel,
+     * returning once every delete has completed. A message whose pop receipt is no longer valid was retrieved
+     * again after its visibility could not be renewed; it is counted rather than failing the committed chunk.
+     */
+    private void commitChunk(ExecutorService deleters, Path checkpointFile, QueueSnapshot.Format snapshotFormat, int chunks, long total,
+                             List<HeldMessage> messages, AtomicLong lostReceipts) throws IOException, StorageException, InterruptedException, ExecutionException {
+        Properties checkpoint = new Properties();
+        checkpoint.setProperty(QueueSnapshot.MODE_PROPERTY, QueueSnapshot.DRAIN_MODE);
+        checkpoint.setProperty(QueueSnapshot.FORMAT_PROPERTY, snapshotFormat.name());
+        checkpoint.setProperty(QueueSnapshot.CHUNKS_PROPERTY, Integer.toString(chunks));
+        checkpoint.setProperty(QueueSnapshot.MESSAGES_PROPERTY, Long.toString(total));
+        QueueSnapshot.storeCheckpoint(checkpointFile, checkpoint);
+
+        List<Future<?>> deletes = new ArrayList<>(messages.size());
+        for (HeldMessage message : messages) {
+            deletes.add(deleters.submit(() -> {
+                try {
+                    message.delete();
+                }
+                catch (StorageException e) {
+                    if (!POP_RECEIPT_MISMATCH.equals(e.getErrorCode()) && !MESSAGE_NOT_FOUND.equals(e.getErrorCode())) {
+                        throw e;
+                    }
+                    lostReceipts.incrementAndGet();
+                }
+                return null;
+            }));
+        }
+        for (Future<?> delete : deletes) {
+            delete.get();
+        }
+        messages.clear();
+    }
+
+    /**
+     * A retrieved message whose visibility is renewed until it is deleted.
+     * Renewal replaces the pop receipt of the message, so renewal and delete are made under its lock.
+     */
+    private final class HeldMessage {
+
+        private final CloudQueueMessage message;
+        private final Set<HeldMessage> held;
+        private long renewAtNanos;
+        private boolean deleted;
+
+        HeldMessage(CloudQueueMessage message, Set<HeldMessage> held) {
+            this.message = message;
+            this.held = held;
+            this.renewAtNanos = System.nanoTime() + TimeUnit.SECONDS.toNanos(visibilityTimeoutInSeconds) / 2;
+        }
+
+        synchronized void renewIfDue(long now) throws StorageException {
+            if (!deleted && now - renewAtNanos >= 0) {
+                queue.updateMessage(message, visibilityTimeoutInSeconds);
+                renewAtNanos = now + TimeUnit.SECONDS.toNanos(visibilityTimeoutInSeconds) / 2;
+            }
+        }
+
+        synchronized void delete() throws StorageException {
+            deleted = true;
+            held.remove(this);
+            queue.deleteMessage(message);
+        }
+    }
+}
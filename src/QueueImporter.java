@@ -0,0 +1,215 @@
+/*
+  Copyright Microsoft Corporation
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.queue.CloudQueue;
+import com.microsoft.azure.storage.queue.CloudQueueMessage;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.BitSet;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Replays a snapshot written by {@link QueueExporter} into a queue.
+ *
+ * Chunks are read sequentially while a pool of senders adds the messages in parallel, with a bounded number of
+ * adds in flight and the send rate paced to a configurable number of messages per second. Progress is recorded in
+ * an import checkpoint inside the snapshot directory that is specific to the target queue: the completed chunks
+ * plus, every 1000 messages and on failure, the number of leading messages of the current chunk that have been
+ * added. Replaying the same snapshot into another queue starts from the beginning.
+ *
+ * Resuming is at-least-once. After a crash, the messages added since the last recorded offset (up to 1000 plus
+ * the adds that were in flight) are added again.
+ */
+class QueueImporter {
+
+    private static final int CHECKPOINT_INTERVAL = 1000;
+
+    private final CloudQueue queue;
+    private final Path directory;
+    private final int senderCount;
+    private final int messagesPerSecond;
+
+    /**
+     * Creates an importer.
+     *
+     * @param queue The queue to add the messages to
+     * @param directory Snapshot directory
+     * @param senderCount Number of parallel senders
+     * @param messagesPerSecond Maximum send rate, or 0 for no limit
+     */
+    QueueImporter(CloudQueue queue, Path directory, int senderCount, int messagesPerSecond) {
+        if (senderCount < 1) {
+            throw new IllegalArgumentException("senderCount must be at least 1.");
+        }
+        if (messagesPerSecond < 0) {
+            throw new IllegalArgumentException("messagesPerSecond must not be negative.");
+        }
+
+        this.queue = queue;
+        this.directory = directory;
+        this.senderCount = senderCount;
+        this.messagesPerSecond = messagesPerSecond;
+    }
+
+    /**
+     * Replays every chunk that has not been imported yet.
+     *
+     * @return The number of messages added by this call
+     * @throws IOException
+     * @throws StorageException
+     * @throws InterruptedException
+     */
+    long importAll() throws IOException, StorageException, InterruptedException {
+        Properties exportCheckpoint = QueueSnapshot.loadCheckpoint(directory.resolve(QueueSnapshot.EXPORT_CHECKPOINT));
+        if (exportCheckpoint.isEmpty()) {
+            throw new IllegalStateException(String.format("No snapshot found in \"%s\".", directory));
+        }
+        QueueSnapshot.Format format = QueueSnapshot.Format.valueOf(exportCheckpoint.getProperty(QueueSnapshot.FORMAT_PROPERTY));
+        int chunks = Integer.parseInt(exportCheckpoint.getProperty(QueueSnapshot.CHUNKS_PROPERTY));
+
+        Path checkpointFile = QueueSnapshot.importCheckpointPath(directory, queue.getUri());
+        Properties checkpoint = QueueSnapshot.loadCheckpoint(checkpointFile);
+        String checkpointQueue = checkpoint.getProperty(QueueSnapshot.QUEUE_PROPERTY, queue.getUri().toString());
+        if (!checkpointQueue.equals(queue.getUri().toString())) {
+            throw new IllegalStateException(String.format("Import checkpoint \"%s\" belongs to queue \"%s\".", checkpointFile, checkpointQueue));
+        }
+        checkpoint.setProperty(QueueSnapshot.QUEUE_PROPERTY, checkpointQueue);
+        int chunkIndex = Integer.parseInt(checkpoint.getProperty(QueueSnapshot.CHUNKS_PROPERTY, "0"));
+        int offset = Integer.parseInt(checkpoint.getProperty(QueueSnapshot.OFFSET_PROPERTY, "0"));
+
+        int maxInFlight = senderCount * 4;
+        Semaphore inFlight = new Semaphore(maxInFlight);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        ExecutorService executor = Executors.newFixedThreadPool(senderCount);
+        long intervalNanos = messagesPerSecond == 0 ? 0 : TimeUnit.SECONDS.toNanos(1) / messagesPerSecond;
+        long nextSendNanos = System.nanoTime();
+        long total = 0;
+
+        try {
+            for (; chunkIndex < chunks; chunkIndex++) {
+                Path chunk = QueueSnapshot.chunkPath(directory, format, chunkIndex);
+                if (!Files.exists(chunk)) {
+                    throw new IllegalStateException(String.format("Snapshot chunk \"%s\" is missing.", chunk));
+                }
+
+                ChunkProgress progress = new ChunkProgress(offset);
+                try (QueueSnapshot.ChunkReader reader = new QueueSnapshot.ChunkReader(chunk, format)) {
+                    // Skip the messages of a partially imported chunk that are already in the queue
+                    for (int i = 0; i < offset; i++) {
+                        reader.next();
+                    }
+
+                    int sequence = offset;
+                    byte[] content;
+                    while ((content = reader.next()) != null && failure.get() == null) {
+                        if (intervalNanos > 0) {
+                            long waitNanos = nextSendNanos - System.nanoTime();
+                            if (waitNanos > 0) {
+                                LockSupport.parkNanos(waitNanos);
+                            }
+                            nextSendNanos = Math.max(nextSendNanos, System.nanoTime() - intervalNanos) + intervalNanos;
+                        }
+
+                        if (sequence > offset && (sequence - offset) % CHECKPOINT_INTERVAL == 0) {
+                            storeProgress(checkpointFile, checkpoint, chunkIndex, progress.watermark());
+                        }
+
+                        inFlight.acquire();
+                        CloudQueueMessage message = new CloudQueueMessage(content);
+                        int messageSequence = sequence++;
+                        executor.execute(() -> {
+                            try {
+                                queue.addMessage(message);
+                                progress.complete(messageSequence);
+                            }
+                            catch (Throwable t) {
+                                failure.compareAndSet(null, t);
+                            }
+                            finally {
+                                inFlight.release();
+                            }
+                        });
+                        total++;
+                    }
+                }
+
+                // Wait for every add of this chunk to complete before recording it
+                inFlight.acquire(maxInFlight);
+                inFlight.release(maxInFlight);
+
+                Throwable t = failure.get();
+                if (t != null) {
+                    storeProgress(checkpointFile, checkpoint, chunkIndex, progress.watermark());
+                }
+                if (t instanceof StorageException) {
+                    throw (StorageException) t;
+                }
+                else if (t != null) {
+                    throw new IllegalStateException(t);
+                }
+
+                offset = 0;
+                storeProgress(checkpointFile, checkpoint, chunkIndex + 1, 0);
+            }
+        }
+        finally {
+            executor.shutdownNow();
+        }
+
+        return total;
+    }
+
+    private static void storeProgress(Path checkpointFile, Properties checkpoint, int chunks, int offset) throws IOException {
+        checkpoint.setProperty(QueueSnapshot.CHUNKS_PROPERTY, Integer.toString(chunks));
+        checkpoint.setProperty(QueueSnapshot.OFFSET_PROPERTY, Integer.toString(offset));
+        QueueSnapshot.storeCheckpoint(checkpointFile, checkpoint);
+    }
+
+    /**
+     * Tracks which messages of a chunk have been added. Adds complete out of order, so the resumable offset is
+     * the end of the contiguous run of completed messages.
+     */
+    private static final class ChunkProgress {
+
+        private final int start;
+        private final BitSet completed = new BitSet();
+        private int watermark;
+
+        ChunkProgress(int start) {
+            this.start = start;
+            this.watermark = start;
+        }
+
+        synchronized void complete(int sequence) {
+            completed.set(sequence - start);
+            while (completed.get(watermark - start)) {
+                watermark++;
+            }
+        }
+
+        synchronized int watermark() {
+            return watermark;
+        }
+    }
+}
@@ -0,0 +1,458 @@
+/*
+  Copyright Microsoft Corporation
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.queue.CloudQueue;
+import com.microsoft.azure.storage.queue.CloudQueueMessage;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Function;
+
+/**
+ * Consumes a queue with per-key ordering.
+ *
+ * A single dispatcher retrieves messages in batches, extracts a partition key from each message and
+ * routes it to one of a fixed number of lanes. Each lane is drained by exactly one worker thread, so
+ * messages sharing a key are handled in the order they were retrieved while different keys run in parallel.
+ * Every lane has its own bound; when a hot key fills its lane the dispatcher waits on that lane only,
+ * and the remaining lanes keep draining what they already hold.
+ *
+ * The visibility of every retrieved message is renewed while it waits for dispatch, waits in its lane or is
+ * being handled, so a slow handler behind a hot key does not let the message reappear and be handled twice.
+ *
+ * A failing handler is retried in place a few times. When the retries are exhausted, or the message cannot be
+ * settled in the queue, its key is stopped. The failed message is made visible again one visibility timeout
+ * after the failure, and every other message with that key is pushed back to become visible no earlier than one
+ * further timeout after that, so the failed message always reappears first. If the failed message comes back
+ * during the same {@link #processAll()} it is handled again: success resumes the key, while another failure
+ * makes it visible again ahead of the messages already pushed back and moves the key's deadline forward.
+ * Messages with a stopped key that are retrieved again before the failed message has been handled are pushed
+ * back again, never earlier than the current deadline.
+ *
+ * If a lane worker is interrupted it keeps the interrupt, releases the messages it still holds and exits.
+ */
+class QueueOrderedConsumer {
+
+    /**
+     * Processes a single message. The message is deleted from the queue when this returns normally.
+     */
+    interface MessageHandler {
+        void handle(CloudQueueMessage message) throws Exception;
+    }
+
+    private static final int MAX_BATCH_SIZE = 32;
+    private static final int MAX_HANDLER_ATTEMPTS = 3;
+    private static final long RETRY_BACKOFF_MILLIS = 1000;
+    private static final long ONE_SECOND_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final long BACKPRESSURE_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(200);
+
+    private final CloudQueue queue;
+    private final Function<CloudQueueMessage, String> keyExtractor;
+    private final MessageHandler handler;
+    private final int visibilityTimeoutInSeconds;
+    private final Lane[] lanes;
+    private final Set<Entry> outstanding = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Creates an ordered consumer for the given queue.
+     *
+     * @param queue The queue to consume
+     * @param keyExtractor Returns the partition key of a message; messages with equal keys are processed in order.
+     *                     It must not return null
+     * @param handler Processes each message
+     * @param laneCount Number of lanes (worker threads)
+     * @param laneCapacity Maximum number of messages buffered in a single lane
+     * @param visibilityTimeoutInSeconds Visibility timeout applied to retrieved messages; it is renewed every half
+     *                                   timeout while the message is held by the consumer
+     */
+    QueueOrderedConsumer(CloudQueue queue, Function<CloudQueueMessage, String> keyExtractor, MessageHandler handler,
+                         int laneCount, int laneCapacity, int visibilityTimeoutInSeconds) {
+        if (laneCount < 1) {
+            throw new IllegalArgumentException("laneCount must be at least 1.");
+        }
+        if (laneCapacity < 1) {
+            throw new IllegalArgumentException("laneCapacity must be at least 1.");
+        }
+        if (visibilityTimeoutInSeconds < 2) {
+            throw new IllegalArgumentException("visibilityTimeoutInSeconds must be at least 2.");
+        }
+
+        this.queue = queue;
+        this.keyExtractor = keyExtractor;
+        this.handler = handler;
+        this.visibilityTimeoutInSeconds = visibilityTimeoutInSeconds;
+        this.lanes = new Lane[laneCount];
+        for (int i = 0; i < laneCount; i++) {
+            this.lanes[i] = new Lane(i, laneCapacity);
+        }
+    }
+
+    /**
+     * Retrieves and processes messages until the queue appears empty, then waits for every lane to drain.
+     *
+     * @throws StorageException
+     * @throws InterruptedException
+     */
+    void processAll() throws StorageException, InterruptedException {
+        ScheduledExecutorService renewer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "queue-lane-renewer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long renewPeriodMillis = TimeUnit.SECONDS.toMillis(visibilityTimeoutInSeconds) / 4;
+        renewer.scheduleWithFixedDelay(this::renewVisibility, renewPeriodMillis, renewPeriodMillis, TimeUnit.MILLISECONDS);
+
+        for (Lane lane : lanes) {
+            lane.start();
+        }
+
+        try {
+            while (true) {
+                List<Entry> batch = new ArrayList<>(MAX_BATCH_SIZE);
+                for (CloudQueueMessage message : queue.retrieveMessages(MAX_BATCH_SIZE, visibilityTimeoutInSeconds, null, null)) {
+                    Entry entry = new Entry(message);
+                    outstanding.add(entry);
+                    batch.add(entry);
+                }
+
+                if (batch.isEmpty()) {
+                    break;
+                }
+
+                for (Entry entry : batch) {
+                    entry.key = keyExtractor.apply(entry.message);
+                    if (entry.key == null) {
+                        throw new IllegalStateException(String.format("No partition key for message \"%s\".", entry.message.getMessageId()));
+                    }
+                    laneFor(entry.key).offer(entry);
+                }
+            }
+        }
+        finally {
+            for (Lane lane : lanes) {
+                lane.finish();
+            }
+            for (Lane lane : lanes) {
+                lane.worker.join();
+            }
+            renewer.shutdownNow();
+        }
+    }
+
+    /**
+     * Prints the occupancy metrics of every lane.
+     */
+    void printLaneMetrics() {
+        for (Lane lane : lanes) {
+            System.out.println(String.format(
+                    "\tLane %d: depth %d, max depth %d, processed %d, failed %d, skipped %d, backpressure waits %d",
+                    lane.index,
+                    lane.depth.get(),
+                    lane.maxDepth.get(),
+                    lane.processed.get(),
+                    lane.failed.get(),
+                    lane.skipped.get(),
+                    lane.backpressureWaits.get()));
+        }
+    }
+
+    private Lane laneFor(String key) {
+        int hash = key.hashCode();
+
+        // Spread the high bits so that keys differing only in their upper bits do not share a lane
+        hash ^= (hash >>> 16);
+        return lanes[(hash & 0x7fffffff) % lanes.length];
+    }
+
+    /**
+     * Extends the visibility timeout of every held message that is past half of its current timeout.
+     */
+    private void renewVisibility() {
+        long now = System.nanoTime();
+        for (Entry entry : outstanding) {
+            try {
+                entry.renewIfDue(now);
+            }
+            catch (Throwable t) {
+                PrintHelper.printException(t);
+            }
+        }
+    }
+
+    /**
+     * A retrieved message together with the state needed to renew and settle it.
+     * Renewal replaces the pop receipt of the message, so every queue call on it is made under its lock.
+     */
+    private final class Entry {
+
+        private final CloudQueueMessage message;
+        private String key;
+        private long renewAtNanos;
+        private boolean settled;
+
+        Entry(CloudQueueMessage message) {
+            this.message = message;
+            this.renewAtNanos = System.nanoTime() + TimeUnit.SECONDS.toNanos(visibilityTimeoutInSeconds) / 2;
+        }
+
+        synchronized void renewIfDue(long now) throws StorageException {
+            if (!settled && now - renewAtNanos >= 0) {
+                queue.updateMessage(message, visibilityTimeoutInSeconds);
+                renewAtNanos = now + TimeUnit.SECONDS.toNanos(visibilityTimeoutInSeconds) / 2;
+            }
+        }
+
+        /**
+         * Deletes the message after it has been handled.
+         */
+        synchronized void delete() throws StorageException {
+            settle();
+            queue.deleteMessage(message);
+        }
+
+        /**
+         * Stops renewing the message so that it becomes visible again when its current timeout expires.
+         */
+        synchronized void release() {
+            settle();
+        }
+
+        /**
+         * Stops renewing the message and leaves it in the queue, invisible for the given number of seconds.
+         */
+        synchronized void defer(int seconds) throws StorageException {
+            settle();
+            queue.updateMessage(message, seconds);
+        }
+
+        private void settle() {
+            settled = true;
+            outstanding.remove(this);
+        }
+    }
+
+    /**
+     * A key whose processing stopped on a failed message.
+     */
+    private static final class StoppedKey {
+
+        private final String failedMessageId;
+        private final long resumeAtNanos;
+
+        /**
+         * @param failedMessageId Id of the message that failed
+         * @param resumeAtNanos Earliest time at which later messages with the key may become visible again
+         */
+        StoppedKey(String failedMessageId, long resumeAtNanos) {
+            this.failedMessageId = failedMessageId;
+            this.resumeAtNanos = resumeAtNanos;
+        }
+    }
+
+    /**
+     * A bounded lane with a single producer (the dispatcher) and a single consumer (its worker thread).
+     */
+    private final class Lane implements Runnable {
+
+        private final int index;
+        private final int capacity;
+        private final ConcurrentLinkedQueue<Entry> entries = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger depth = new AtomicInteger();
+        private final AtomicInteger maxDepth = new AtomicInteger();
+        private final AtomicLong processed = new AtomicLong();
+        private final AtomicLong failed = new AtomicLong();
+        private final AtomicLong skipped = new AtomicLong();
+        private final AtomicLong backpressureWaits = new AtomicLong();
+        private final Map<String, StoppedKey> stoppedKeys = new HashMap<>();
+        private final Thread worker;
+        private volatile boolean finished;
+        private volatile boolean aborted;
+
+        Lane(int index, int capacity) {
+            this.index = index;
+            this.capacity = capacity;
+            this.worker = new Thread(this, "queue-lane-" + index);
+            this.worker.setDaemon(true);
+        }
+
+        void start() {
+            worker.start();
+        }
+
+        /**
+         * Enqueues a message, waiting while the lane is full. Once the worker has been interrupted the
+         * message is released straight back to the queue.
+         */
+        void offer(Entry entry) throws InterruptedException {
+            if (depth.get() >= capacity && !aborted) {
+                backpressureWaits.incrementAndGet();
+                while (depth.get() >= capacity && !aborted) {
+                    LockSupport.parkNanos(BACKPRESSURE_PARK_NANOS);
+                    if (Thread.interrupted()) {
+                        throw new InterruptedException();
+                    }
+                }
+            }
+            if (aborted) {
+                entry.release();
+                return;
+            }
+
+            entries.offer(entry);
+            int current = depth.incrementAndGet();
+            if (current > maxDepth.get()) {
+                maxDepth.set(current);
+            }
+            LockSupport.unpark(worker);
+        }
+
+        /**
+         * Signals that no further messages will be offered; the worker exits once the lane is empty.
+         */
+        void finish() {
+            finished = true;
+            LockSupport.unpark(worker);
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Entry entry = entries.poll();
+                if (entry == null) {
+                    if (finished && entries.isEmpty()) {
+                        return;
+                    }
+                    LockSupport.park(this);
+                    if (Thread.currentThread().isInterrupted()) {
+                        abort();
+                        return;
+                    }
+                    continue;
+                }
+
+                try {
+                    process(entry);
+                }
+                catch (InterruptedException e) {
+                    entry.release();
+                    Thread.currentThread().interrupt();
+                    abort();
+                    return;
+                }
+                catch (Throwable t) {
+                    // The message could not be settled; it reappears once its timeout expires, so stop the key
+                    // to keep later messages with the same key behind it
+                    entry.release();
+                    failed.incrementAndGet();
+                    if (!stoppedKeys.containsKey(entry.key)) {
+                        stoppedKeys.put(entry.key, new StoppedKey(entry.message.getMessageId(),
+                                System.nanoTime() + 2 * TimeUnit.SECONDS.toNanos(visibilityTimeoutInSeconds)));
+                    }
+                    PrintHelper.printException(t);
+                }
+                finally {
+                    depth.decrementAndGet();
+                }
+            }
+        }
+
+        private void process(Entry entry) throws StorageException, InterruptedException {
+            StoppedKey stopped = stoppedKeys.get(entry.key);
+            if (stopped != null && !stopped.failedMessageId.equals(entry.message.getMessageId())) {
+                // Push the message back behind the failed one, never earlier than the key's deadline
+                long waitNanos = Math.max(stopped.resumeAtNanos - System.nanoTime(), TimeUnit.SECONDS.toNanos(visibilityTimeoutInSeconds));
+                skipped.incrementAndGet();
+                entry.defer(toSeconds(waitNanos));
+                return;
+            }
+
+            if (handle(entry)) {
+                entry.delete();
+                processed.incrementAndGet();
+                stoppedKeys.remove(entry.key);
+                return;
+            }
+
+            // The failed message reappears after one timeout and the rest of the key one timeout later
+            failed.incrementAndGet();
+            long now = System.nanoTime();
+            long timeoutNanos = TimeUnit.SECONDS.toNanos(visibilityTimeoutInSeconds);
+            long failedVisibleAtNanos = now + timeoutNanos;
+            long resumeAtNanos = now + 2 * timeoutNanos;
+            if (stopped != null) {
+                // Failed again: reappear before the messages already pushed back to the previous deadline
+                failedVisibleAtNanos = Math.max(now + ONE_SECOND_NANOS, Math.min(failedVisibleAtNanos, stopped.resumeAtNanos - ONE_SECOND_NANOS));
+                resumeAtNanos = Math.max(stopped.resumeAtNanos, failedVisibleAtNanos + timeoutNanos);
+            }
+            stoppedKeys.put(entry.key, new StoppedKey(entry.message.getMessageId(), resumeAtNanos));
+            entry.defer(toSeconds(failedVisibleAtNanos - now));
+        }
+
+        /**
+         * Converts a delay to whole seconds, rounding up so that a deadline is never undercut.
+         */
+        private int toSeconds(long nanos) {
+            return (int) ((nanos + ONE_SECOND_NANOS - 1) / ONE_SECOND_NANOS);
+        }
+
+        /**
+         * Releases every message still queued in the lane after the worker has been interrupted.
+         */
+        private void abort() {
+            aborted = true;
+            Entry entry;
+            while ((entry = entries.poll()) != null) {
+                entry.release();
+                depth.decrementAndGet();
+            }
+        }
+
+        /**
+         * Runs the handler, retrying in place so that later messages with the same key wait for this one.
+         *
+         * @return true if the handler succeeded
+         */
+        private boolean handle(Entry entry) throws InterruptedException {
+            for (int attempt = 1; ; attempt++) {
+                try {
+                    handler.handle(entry.message);
+                    return true;
+                }
+                catch (InterruptedException e) {
+                    throw e;
+                }
+                catch (Throwable t) {
+                    PrintHelper.printException(t);
+                    if (attempt == MAX_HANDLER_ATTEMPTS) {
+                        return false;
+                    }
+                }
+                Thread.sleep(RETRY_BACKOFF_MILLIS * attempt);
+            }
+        }
+    }
+}
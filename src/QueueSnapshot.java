@@ -0,0 +1,316 @@
+/*
+  Copyright Microsoft Corporation
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.queue.CloudQueueMessage;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.URI;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Base64;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * On-disk layout shared by {@link QueueExporter} and {@link QueueImporter}.
+ *
+ * A snapshot is a directory of gzip compressed chunk files ("chunk-00000.ndjson.gz", ...) plus a checkpoint
+ * properties file recording how many chunks are complete. A chunk is only counted once it has been forced to disk.
+ * Each queue the snapshot is imported into gets its own import checkpoint.
+ */
+final class QueueSnapshot {
+
+    /**
+     * Record encoding used inside a chunk file.
+     */
+    enum Format {
+        /** One JSON object per line with the message content in base64. */
+        NDJSON(".ndjson.gz"),
+        /** Length-prefixed binary records. */
+        BINARY(".bin.gz");
+
+        private final String extension;
+
+        Format(String extension) {
+            this.extension = extension;
+        }
+    }
+
+    static final String EXPORT_CHECKPOINT = "export.checkpoint";
+    private static final String IMPORT_CHECKPOINT_PREFIX = "import-";
+    private static final String CHECKPOINT_EXTENSION = ".checkpoint";
+
+    static final String CHUNKS_PROPERTY = "chunks";
+    static final String MESSAGES_PROPERTY = "messages";
+    static final String FORMAT_PROPERTY = "format";
+    static final String QUEUE_PROPERTY = "queue";
+    static final String OFFSET_PROPERTY = "offset";
+    static final String MODE_PROPERTY = "mode";
+
+    static final String DRAIN_MODE = "drain";
+    static final String PEEK_MODE = "peek";
+
+    private static final String CHUNK_PREFIX = "chunk-";
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private QueueSnapshot() {
+    }
+
+    /**
+     * Returns the path of a chunk file.
+     *
+     * @param directory Snapshot directory
+     * @param format Record format
+     * @param index Chunk index
+     * @return The chunk file path
+     */
+    static Path chunkPath(Path directory, Format format, int index) {
+        return directory.resolve(String.format("%s%05d%s", CHUNK_PREFIX, index, format.extension));
+    }
+
+    /**
+     * Returns the path of the import checkpoint for a target queue, so that one snapshot can be replayed
+     * into several queues independently.
+     *
+     * @param directory Snapshot directory
+     * @param queueUri URI of the target queue
+     * @return The checkpoint file path
+     */
+    static Path importCheckpointPath(Path directory, URI queueUri) {
+        UUID id = UUID.nameUUIDFromBytes(queueUri.toString().getBytes(StandardCharsets.UTF_8));
+        return directory.resolve(IMPORT_CHECKPOINT_PREFIX + id + CHECKPOINT_EXTENSION);
+    }
+
+    /**
+     * Returns whether the directory already holds an export checkpoint or chunk files.
+     *
+     * @param directory Snapshot directory
+     * @return true if a snapshot exists in the directory
+     * @throws IOException
+     */
+    static boolean exists(Path directory) throws IOException {
+        if (Files.exists(directory.resolve(EXPORT_CHECKPOINT))) {
+            return true;
+        }
+        if (!Files.isDirectory(directory)) {
+            return false;
+        }
+        try (DirectoryStream<Path> chunks = Files.newDirectoryStream(directory, CHUNK_PREFIX + "*")) {
+            return chunks.iterator().hasNext();
+        }
+    }
+
+    /**
+     * Loads a checkpoint file.
+     *
+     * @param file Checkpoint file
+     * @return The checkpoint properties, empty if the file does not exist
+     * @throws IOException
+     */
+    static Properties loadCheckpoint(Path file) throws IOException {
+        Properties checkpoint = new Properties();
+        if (Files.exists(file)) {
+            try (InputStream in = Files.newInputStream(file)) {
+                checkpoint.load(in);
+            }
+        }
+        return checkpoint;
+    }
+
+    /**
+     * Replaces a checkpoint file atomically so that an interrupted write never leaves a truncated checkpoint behind.
+     *
+     * @param file Checkpoint file
+     * @param checkpoint Checkpoint properties
+     * @throws IOException
+     */
+    static void storeCheckpoint(Path file, Properties checkpoint) throws IOException {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            checkpoint.store(Channels.newOutputStream(channel), null);
+            channel.force(true);
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Streams messages into a single compressed chunk file.
+     */
+    static final class ChunkWriter implements Closeable {
+
+        private final Format format;
+        private final FileChannel channel;
+        private final GZIPOutputStream gzip;
+        private final DataOutputStream out;
+
+        ChunkWriter(Path file, Format format) throws IOException {
+            this.format = format;
+            this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            try {
+                this.gzip = new GZIPOutputStream(Channels.newOutputStream(channel), BUFFER_SIZE);
+            }
+            catch (IOException|RuntimeException e) {
+                channel.close();
+                throw e;
+            }
+            this.out = new DataOutputStream(new BufferedOutputStream(gzip, BUFFER_SIZE));
+        }
+
+        /**
+         * Appends a message to the chunk.
+         *
+         * @param message The message to write
+         * @throws IOException
+         * @throws StorageException
+         */
+        void write(CloudQueueMessage message) throws IOException, StorageException {
+            byte[] content = message.getMessageContentAsByte();
+            long insertionTime = message.getInsertionTime() == null ? 0 : message.getInsertionTime().getTime();
+
+            if (format == Format.NDJSON) {
+                String line = String.format("{\"id\":\"%s\",\"insertionTime\":%d,\"dequeueCount\":%d,\"content\":\"%s\"}\n",
+                        message.getMessageId(),
+                        insertionTime,
+                        message.getDequeueCount(),
+                        Base64.getEncoder().encodeToString(content));
+                out.write(line.getBytes(StandardCharsets.UTF_8));
+            }
+            else {
+                out.writeUTF(message.getMessageId() == null ? "" : message.getMessageId());
+                out.writeLong(insertionTime);
+                out.writeInt(message.getDequeueCount());
+                out.writeInt(content.length);
+                out.write(content);
+            }
+        }
+
+        /**
+         * Completes the gzip stream, forces the chunk to disk and releases the deflater and the channel.
+         *
+         * @throws IOException
+         */
+        @Override
+        public void close() throws IOException {
+            try {
+                out.flush();
+                gzip.finish();
+                channel.force(true);
+            }
+            finally {
+                try {
+                    out.close();
+                }
+                finally {
+                    channel.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Streams message contents back out of a single compressed chunk file.
+     */
+    static final class ChunkReader implements Closeable {
+
+        private static final String CONTENT_FIELD = "\"content\":\"";
+
+        private final Format format;
+        private final InputStream gzip;
+        private final BufferedReader lines;
+        private final DataInputStream records;
+
+        ChunkReader(Path file, Format format) throws IOException {
+            this.format = format;
+
+            // GZIPInputStream reads the header eagerly, so close the channel if the header is corrupt or truncated
+            FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+            try {
+                this.gzip = new GZIPInputStream(Channels.newInputStream(channel), BUFFER_SIZE);
+            }
+            catch (IOException|RuntimeException e) {
+                channel.close();
+                throw e;
+            }
+            if (format == Format.NDJSON) {
+                this.lines = new BufferedReader(new InputStreamReader(gzip, StandardCharsets.UTF_8), BUFFER_SIZE);
+                this.records = null;
+            }
+            else {
+                this.lines = null;
+                this.records = new DataInputStream(new BufferedInputStream(gzip, BUFFER_SIZE));
+            }
+        }
+
+        /**
+         * Reads the content of the next message.
+         *
+         * @return The message content, or null at the end of the chunk
+         * @throws IOException
+         */
+        byte[] next() throws IOException {
+            if (format == Format.NDJSON) {
+                String line;
+                do {
+                    line = lines.readLine();
+                    if (line == null) {
+                        return null;
+                    }
+                } while (line.isEmpty());
+
+                int start = line.indexOf(CONTENT_FIELD);
+                int end = start < 0 ? -1 : line.indexOf('"', start + CONTENT_FIELD.length());
+                if (end < 0) {
+                    throw new IOException(String.format("Malformed snapshot record: %s", line));
+                }
+                return Base64.getDecoder().decode(line.substring(start + CONTENT_FIELD.length(), end));
+            }
+
+            try {
+                records.readUTF();
+            }
+            catch (EOFException e) {
+                return null;
+            }
+            records.readLong();
+            records.readInt();
+            byte[] content = new byte[records.readInt()];
+            records.readFully(content);
+            return content;
+        }
+
+        @Override
+        public void close() throws IOException {
+            gzip.close();
+        }
+    }
+}